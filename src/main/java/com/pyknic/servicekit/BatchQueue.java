@@ -0,0 +1,142 @@
+/*
+ * Copyright 2015 Emil Forslund.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pyknic.servicekit;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.function.Function;
+
+import static java.util.Objects.requireNonNull;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.stream.Collectors.toList;
+
+/**
+ * Gathers the arguments of concurrent calls to a batched {@link Service} 
+ * during a short window and passes them to the batch method in a single
+ * call. Each caller is blocked until the batch has completed and then 
+ * receives its own result.
+ *
+ * @author Emil Forslund
+ */
+final class BatchQueue {
+    
+    private final static ThreadFactory DAEMONS = r -> {
+        final Thread thread = new Thread(r, "servicekit-batch");
+        thread.setDaemon(true);
+        return thread;
+    };
+    
+    private final static ScheduledExecutorService SCHEDULER = 
+        Executors.newSingleThreadScheduledExecutor(DAEMONS);
+    
+    private final static ExecutorService EXECUTOR =
+        Executors.newCachedThreadPool(DAEMONS);
+    
+    private final long window;
+    private final Function<List<Object[]>, List<?>> invoker;
+    private List<Pending> pending;
+    
+    /**
+     * Creates a new queue.
+     * 
+     * @param window   the number of milliseconds to gather calls
+     * @param invoker  invokes the batch method with the gathered arguments
+     */
+    BatchQueue(long window, Function<List<Object[]>, List<?>> invoker) {
+        this.window  = window;
+        this.invoker = requireNonNull(invoker);
+    }
+    
+    /**
+     * Adds the specified arguments to the current batch and blocks until the
+     * batch has been executed.
+     * 
+     * @param args               the arguments of this call
+     * @return                   the result for this call
+     * @throws ServiceException  if the batch could not be executed
+     */
+    Object submit(Object[] args) throws ServiceException {
+        final Pending call = new Pending(args);
+        
+        synchronized (this) {
+            if (pending == null) {
+                pending = new ArrayList<>();
+                SCHEDULER.schedule(
+                    () -> EXECUTOR.execute(this::flush), 
+                    window, MILLISECONDS
+                );
+            }
+            
+            pending.add(call);
+        }
+        
+        try {
+            return call.result.join();
+        } catch (CompletionException ex) {
+            if (ex.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) ex.getCause();
+            } else {
+                throw new ServiceException("Batched call failed.", ex.getCause());
+            }
+        }
+    }
+    
+    private void flush() {
+        final List<Pending> batch;
+        
+        synchronized (this) {
+            batch   = pending;
+            pending = null;
+        }
+        
+        try {
+            final List<?> results = invoker.apply(
+                batch.stream().map(p -> p.args).collect(toList())
+            );
+            
+            if (results == null || results.size() != batch.size()) {
+                throw new ServiceException(
+                    "Batch method returned " + 
+                    (results == null ? "null" : results.size() + " results") +
+                    " for " + batch.size() + " requests."
+                );
+            }
+            
+            for (int i = 0; i < batch.size(); i++) {
+                batch.get(i).result.complete(results.get(i));
+            }
+        } catch (RuntimeException | Error ex) {
+            batch.forEach(p -> p.result.completeExceptionally(ex));
+        }
+    }
+    
+    private final static class Pending {
+        
+        private final Object[] args;
+        private final CompletableFuture<Object> result;
+        
+        private Pending(Object[] args) {
+            this.args   = args;
+            this.result = new CompletableFuture<>();
+        }
+    }
+}
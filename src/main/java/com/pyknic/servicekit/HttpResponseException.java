@@ -15,6 +15,11 @@ public class HttpResponseException extends RuntimeException {
         super(message);
         this.status = status;
     }
+    
+    public HttpResponseException(Status status, String message, Throwable cause) {
+        super(message, cause);
+        this.status = status;
+    }
 
     public Status getStatus() {
         return status;
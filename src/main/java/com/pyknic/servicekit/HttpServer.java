@@ -15,12 +15,17 @@
  */
 package com.pyknic.servicekit;
 
+import com.pyknic.servicekit.trace.Phase;
+import com.pyknic.servicekit.trace.Span;
+import com.pyknic.servicekit.trace.TraceLog;
 import fi.iki.elonen.NanoHTTPD;
 import fi.iki.elonen.NanoHTTPD.Response.Status;
 
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.net.URLEncoder;
 import java.util.Map;
 import java.util.Optional;
 import java.util.stream.Collectors;
@@ -38,9 +43,13 @@ import java.util.stream.Stream;
  */
 public abstract class HttpServer {
 
+    private final static String TRACEPARENT = "traceparent";
+    private final static String TRACERESPONSE = "traceresponse";
+
     private final int port;
     private final NanoHTTPD server;
     private final Map<String, ServiceHook<HttpServer>> hooks;
+    private TraceLog traceLog;
 
     /**
      * Creates a new HTTP server, parsing the subclass of this for methods annoted
@@ -55,6 +64,36 @@ public abstract class HttpServer {
 
             @Override
             public Response serve(IHTTPSession session) {
+                // NanoHTTPD reuses the header map for every request on a 
+                // keep-alive connection, so the header is removed to keep it 
+                // from being attached to the next request as well.
+                final Span span = Span.start(session.getHeaders().remove(TRACEPARENT));
+                Response response = null;
+                
+                try {
+                    response = serve(session, span);
+                } catch (RuntimeException ex) {
+                    span.setError(ex);
+                    response = new Response(
+                        Status.INTERNAL_ERROR, "text/plain", ex.getMessage());
+                } finally {
+                    span.finish(response == null 
+                        ? Status.INTERNAL_ERROR.getRequestStatus()
+                        : response.getStatus().getRequestStatus()
+                    );
+                    
+                    traceLog.submit(span);
+                }
+                
+                if (span.isPropagated()) {
+                    response.addHeader(TRACERESPONSE, span.toTraceresponse());
+                }
+                
+                return response;
+            }
+            
+            private Response serve(IHTTPSession session, Span span) {
+                final long routeStart = System.nanoTime();
                 final URI uri;
                 final Map<String, String> params;
                 final String service;
@@ -72,20 +111,35 @@ public abstract class HttpServer {
                     hook = findCorrectHook(service);
                 } catch (ServiceException ex) {
                     return new Response(Status.NOT_FOUND, "text/plain", ex.getMessage());
+                } finally {
+                    span.record(Phase.ROUTE, System.nanoTime() - routeStart);
                 }
+                
+                span.setService(hook.getName());
 
+                final long cacheStart = System.nanoTime();
                 final String result;
                 
                 try {
-                    result = hook.getCache().get(session.getQueryParameterString(), 
-                        u -> hook.call(params)
+                    result = hook.getCache().get(canonicalRequest(params), 
+                        u -> hook.call(params, span)
                     );
                 } catch (HttpResponseException ex) {
+                    // Only server faults are failures, not rejected requests.
+                    if (ex.getStatus().getRequestStatus() >= 500) {
+                        span.setError(ex.getCause());
+                    }
                     return ex.createResponse();
                 } catch (ServiceException ex) {
-                    System.err.println(ex.getMessage());
+                    span.setError(ex);
                     return new Response(
                         Status.INTERNAL_ERROR, "text/plain", ex.getMessage());
+                } finally {
+                    span.record(Phase.CACHE, System.nanoTime() - cacheStart
+                        - span.get(Phase.BIND) 
+                        - span.get(Phase.INVOKE) 
+                        - span.get(Phase.ENCODE)
+                    );
                 }
 
                 return new Response(Status.OK, hook.getEncoder().getMimeType(), result);
@@ -104,12 +158,25 @@ public abstract class HttpServer {
      * @see                 NanoHTTPD::start()
      */
     public final HttpServer start() throws IOException {
+        traceLog = createTraceLog().start();
         server.start();
         onStarted();
         return this;
     }
     
     public void onStarted() {}
+    
+    /**
+     * Creates the {@link TraceLog} that slow, failed and sampled requests
+     * are written to. This is called once every time the server is started.
+     * Subclasses can override this to change the thresholds or the output
+     * of the log.
+     *
+     * @return  the trace log to use
+     */
+    protected TraceLog createTraceLog() {
+        return new TraceLog();
+    }
 
     /**
      * Stops the server.
@@ -119,6 +186,9 @@ public abstract class HttpServer {
      */
     public final HttpServer stop() {
         server.stop();
+        if (traceLog != null) {
+            traceLog.stop();
+        }
         onStopped();
         return this;
     }
@@ -143,6 +213,36 @@ public abstract class HttpServer {
             ));
     }
 
+    /**
+     * Creates a key for the specified parameters that is the same for all
+     * requests with the same arguments, regardless of the order or case of
+     * the parameter names. This is used when looking up the response in the
+     * cache of the service.
+     * <p>
+     * The parameters have already been decoded by NanoHTTPD, so names and
+     * values are encoded again to make sure that a value containing 
+     * {@code '&'} or {@code '='} can not produce the same key as a different
+     * set of parameters. Names that only differ in case give the same key,
+     * but such requests are rejected when the arguments are parsed.
+     * 
+     * @param params  the request parameters
+     * @return        the canonical request
+     */
+    private static String canonicalRequest(Map<String, String> params) {
+        return params.entrySet().stream()
+            .map(e -> encode(e.getKey().toLowerCase()) + "=" + encode(e.getValue()))
+            .sorted()
+            .collect(Collectors.joining("&"));
+    }
+    
+    private static String encode(String value) {
+        try {
+            return URLEncoder.encode(value, "UTF-8");
+        } catch (UnsupportedEncodingException ex) {
+            throw new ServiceException("UTF-8 is not supported.", ex);
+        }
+    }
+
     private ServiceHook<HttpServer> findCorrectHook(String service) throws ServiceException {
         return Optional.ofNullable(hooks.get(service))
             .orElseThrow(
@@ -62,4 +62,28 @@ public @interface Service {
      * @return  the cache type
      */
     Class<? extends Cache> cache() default NoCache.class;
+    
+    /**
+     * The name of an optional batch method in the same server class. If set,
+     * concurrent calls to this service are gathered during a short window (see
+     * {@link #batchWindow()}) and passed to the batch method in a single call
+     * instead of invoking the annoted method once for each request.
+     * <p>
+     * The batch method must have the same number of parameters as the annoted
+     * method, each of type {@code List}, where the n:th list holds the n:th
+     * argument of every gathered request. It must return a {@code List} with
+     * one result for each request, in the same order.
+     * 
+     * @return  the name of the batch method or an empty string for no batching
+     */
+    String batch() default "";
+    
+    /**
+     * The number of milliseconds to gather requests before they are passed to
+     * the batch method. This value is only used if a {@link #batch()} method
+     * is specified.
+     * 
+     * @return  the batch window in milliseconds
+     */
+    int batchWindow() default 10;
 }
\ No newline at end of file
@@ -15,22 +15,36 @@
  */
 package com.pyknic.servicekit;
 
-import com.google.gson.Gson;
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.pyknic.servicekit.cache.BasicCache;
 import com.pyknic.servicekit.cache.Cache;
+import com.pyknic.servicekit.cache.CacheManager;
 import com.pyknic.servicekit.encode.Encoder;
+import com.pyknic.servicekit.encode.JsonAdapters;
+import com.pyknic.servicekit.trace.Phase;
+import com.pyknic.servicekit.trace.Span;
 import fi.iki.elonen.NanoHTTPD.Response.Status;
 
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.StringReader;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.lang.reflect.Parameter;
+import java.lang.reflect.Type;
 import java.util.Arrays;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.stream.Stream;
 
 import static java.util.Objects.requireNonNull;
 import java.util.Optional;
 import static java.util.stream.Collectors.joining;
+import static java.util.stream.Collectors.toList;
 
 /**
  * A representation of a {@code Method} that contains additional methods for
@@ -45,6 +59,8 @@ public final class ServiceHook<T extends HttpServer> {
     private final T server;
     private final Method method;
     private final Cache cache;
+    private final TypeAdapter<?>[] adapters;
+    private final BatchQueue batch;
 
     static <T extends HttpServer> ServiceHook<T> create(T servlet, Method method) {
         return new ServiceHook<>(servlet, method);
@@ -101,19 +117,42 @@ public final class ServiceHook<T extends HttpServer> {
         return getName() + "::" + getSignature();
     }
 
-    String call(Map<String, String> params) throws ServiceException {
-        final Gson gson = new Gson();
+    String call(Map<String, String> params, Span span) throws ServiceException {
+        final long bindStart = System.nanoTime();
         final Map<String, Object> args = new LinkedHashMap<>();
+        final Parameter[] parameters = method.getParameters();
         
-        Stream.of(method.getParameters())
-            .forEachOrdered(p -> {
-                final Argument arg = toArgument(p, params, gson);
+        try {
+            for (int i = 0; i < parameters.length; i++) {
+                final Argument arg = toArgument(parameters[i], params, adapters[i]);
                 args.put(arg.name, arg.value);
-            });
+            }
+        } finally {
+            span.record(Phase.BIND, System.nanoTime() - bindStart);
+        }
+        
+        final long invokeStart = System.nanoTime();
 
         final Object result;
         try {
-            result = method.invoke(server, args.values().toArray());
+            result = batch == null
+                ? invoke(method, args.values().toArray())
+                : batch.submit(args.values().toArray());
+        } finally {
+            span.record(Phase.INVOKE, System.nanoTime() - invokeStart);
+        }
+
+        final long encodeStart = System.nanoTime();
+        try {
+            return getEncoder().apply(args, result);
+        } finally {
+            span.record(Phase.ENCODE, System.nanoTime() - encodeStart);
+        }
+    }
+
+    private Object invoke(Method target, Object[] values) throws ServiceException {
+        try {
+            return target.invoke(server, values);
         } catch (InvocationTargetException ex) {
             final Throwable thrw = Optional.ofNullable(ex.getCause()).orElse(ex);
             if (thrw instanceof HttpResponseException) {
@@ -121,34 +160,88 @@ public final class ServiceHook<T extends HttpServer> {
                 final HttpResponseException httpThrw = (HttpResponseException) thrw;
                 throw httpThrw;
             } else {
-                thrw.printStackTrace();
                 throw new HttpResponseException(Status.INTERNAL_ERROR, 
-                    "Service '" + method.getName() +
+                    "Service '" + target.getName() +
                     "' in server '" + server.getClass().getSimpleName() +
                     "' casted an exception of type '" + 
-                    thrw.getClass().getSimpleName() + "'."
+                    thrw.getClass().getSimpleName() + "'.",
+                    thrw
                 );
             }
         } catch (IllegalAccessException | IllegalArgumentException ex) {
             throw new ServiceException(
-                "Service '" + method.getName() +
+                "Service '" + target.getName() +
                 "' in server '" + server.getClass().getSimpleName() +
-                "' could not be executed with signature '" + getSignature() + 
-                "' and values '" + args.values().toString() + "'.",
+                "' could not be executed with signature '" + getSignature(target) + 
+                "' and values '" + Arrays.toString(values) + "'.",
                 ex
             );
         }
-
-        return getEncoder().apply(args, result);
+    }
+    
+    private List<?> invokeBatch(Method batchMethod, List<Object[]> calls) throws ServiceException {
+        final Object[] columns = new Object[method.getParameterCount()];
+        
+        for (int i = 0; i < columns.length; i++) {
+            final int index = i;
+            columns[i] = calls.stream()
+                .map(args -> args[index])
+                .collect(toList());
+        }
+        
+        return (List<?>) invoke(batchMethod, columns);
+    }
+    
+    private BatchQueue createBatchQueue() throws ServiceException {
+        final String batchName = getService().batch();
+        
+        if (batchName.isEmpty()) {
+            return null;
+        }
+        
+        final Class<?>[] batchParams = new Class<?>[method.getParameterCount()];
+        Arrays.fill(batchParams, List.class);
+        
+        final Method batchMethod;
+        try {
+            batchMethod = server.getClass().getMethod(batchName, batchParams);
+        } catch (NoSuchMethodException ex) {
+            throw new ServiceException(
+                "Batch method '" + batchName +
+                "' specified in service '" + method.getName() +
+                "' in server '" + server.getClass().getSimpleName() +
+                "' must be public and take " + batchParams.length + 
+                " parameters of type 'List'.",
+                ex
+            );
+        }
+        
+        if (!List.class.isAssignableFrom(batchMethod.getReturnType())) {
+            throw new ServiceException(
+                "Batch method '" + batchName +
+                "' specified in service '" + method.getName() +
+                "' in server '" + server.getClass().getSimpleName() +
+                "' must return a 'List'."
+            );
+        }
+        
+        return new BatchQueue(
+            getService().batchWindow(), 
+            calls -> invokeBatch(batchMethod, calls)
+        );
     }
 
     private String getSignature() {
-        return "(" + Stream.of(method.getParameterTypes())
+        return getSignature(method);
+    }
+    
+    private static String getSignature(Method target) {
+        return "(" + Stream.of(target.getParameterTypes())
             .map(Class::getSimpleName)
             .collect(joining(", ")) + ")";
     }
 
-    private Argument toArgument(Parameter param, Map<String, String> params, Gson gson) throws ServiceException {
+    private Argument toArgument(Parameter param, Map<String, String> params, TypeAdapter<?> adapter) throws ServiceException {
 
         final String paramName;
         
@@ -171,8 +264,14 @@ public final class ServiceHook<T extends HttpServer> {
         return params.entrySet().stream()
             .filter(e -> paramName.equals(e.getKey().toLowerCase()))
             .map(Map.Entry::getValue)
-            .findAny()
-            .map(json -> gson.fromJson(json, param.getParameterizedType()))
+            .reduce((a, b) -> {
+                throw new HttpResponseException(Status.BAD_REQUEST,
+                    "Parameter '" + paramName + 
+                    "' is specified more than once in call to service '" + 
+                    method.getName() + "'."
+                );
+            })
+            .map(json -> parseArgument(param, paramName, json, adapter))
             .map(obj -> new Argument(paramName, obj))
             .orElseGet(() -> {
                 if (Optional.class.isAssignableFrom(param.getType())) {
@@ -187,6 +286,48 @@ public final class ServiceHook<T extends HttpServer> {
             });
     }
 
+    private Object parseArgument(Parameter param, String paramName, String json, TypeAdapter<?> adapter) throws HttpResponseException {
+        try {
+            return fromJson(json, adapter == null
+                ? JsonAdapters.adapterFor(param.getParameterizedType())
+                : adapter
+            );
+        } catch (JsonSyntaxException ex) {
+            throw new HttpResponseException(Status.BAD_REQUEST,
+                "Parameter '" + paramName +
+                "' in call to service '" + method.getName() +
+                "' could not be parsed as type '" + 
+                param.getType().getSimpleName() + "'."
+            );
+        }
+    }
+
+    private static Object fromJson(String json, TypeAdapter<?> adapter) throws JsonSyntaxException {
+        final JsonReader reader = new JsonReader(new StringReader(json));
+        reader.setLenient(true);
+        
+        try {
+            // An empty document is read as null, the same as in Gson.
+            reader.peek();
+        } catch (EOFException ex) {
+            return null;
+        } catch (IOException ex) {
+            throw new JsonSyntaxException(ex);
+        }
+        
+        try {
+            final Object value = adapter.read(reader);
+            
+            if (value != null && reader.peek() != JsonToken.END_DOCUMENT) {
+                throw new JsonSyntaxException("JSON document was not fully consumed.");
+            }
+            
+            return value;
+        } catch (IOException | IllegalStateException ex) {
+            throw new JsonSyntaxException(ex);
+        }
+    }
+
     private static class Argument {
         private final String name;
         private final Object value;
@@ -211,5 +352,26 @@ public final class ServiceHook<T extends HttpServer> {
                 ex
             );
         }
+        
+        if (cache instanceof BasicCache) {
+            CacheManager.getInstance().register((BasicCache) cache);
+        }
+        
+        // Resolve the json adapters up front so that they don't have to be
+        // looked up for every request. Types that gson can not handle yet are
+        // left to be resolved (and reported) when the service is called.
+        this.adapters = Stream.of(method.getGenericParameterTypes())
+            .map(ServiceHook::tryCreateAdapter)
+            .toArray(TypeAdapter<?>[]::new);
+        
+        this.batch = createBatchQueue();
+    }
+    
+    private static TypeAdapter<?> tryCreateAdapter(Type type) {
+        try {
+            return JsonAdapters.adapterFor(type);
+        } catch (RuntimeException ex) {
+            return null;
+        }
     }
 }
\ No newline at end of file
@@ -1,13 +1,18 @@
 package com.pyknic.servicekit.cache;
 
-import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.function.Function;
 
 /**
  * A {@link Cache} implementation that simly stores requests in a 
- * {@code HashMap} for 1 hour by default. Subclasses might have a different
- * life length.
+ * {@code LinkedHashMap} for 1 hour by default. Subclasses might have a 
+ * different life length.
+ * <p>
+ * The memory used by all basic caches that belong to a service is shared
+ * through the {@link CacheManager}. When a cache is full, the least recently
+ * used responses are evicted first.
  * 
  * @author Emil Forslund
  */
@@ -15,17 +20,27 @@ public class BasicCache implements Cache {
     
     public final static int ONE_HOUR = 1000 * 60 * 60;
     
+    /**
+     * The estimated number of bytes used by an entry, not counting the
+     * characters of the request and the response.
+     */
+    private final static int ENTRY_OVERHEAD = 128;
+    
     private final Map<String, CacheResult> cache;
     private final int expirationAge;
     
+    private long size, capacity;
+    private long hits;
+    private long totalMisses, totalCost;
+    
     public BasicCache() {
-        cache         = new HashMap<>();
-        expirationAge = ONE_HOUR;
+        this(ONE_HOUR);
     }
     
     protected BasicCache(int expirationAge) {
-        this.cache         = new HashMap<>();
+        this.cache         = new LinkedHashMap<>(16, 0.75f, true);
         this.expirationAge = expirationAge;
+        this.capacity      = Long.MAX_VALUE;
     }
     
     protected int getExpirationAge() {
@@ -34,32 +49,101 @@ public class BasicCache implements Cache {
     
     @Override
     public String get(String request, Function<String, String> responder) {
-        CacheResult response = cache.get(request);
+        synchronized (this) {
+            final CacheResult response = cache.get(request);
+            
+            if (response != null && !response.hasExpired(System.currentTimeMillis())) {
+                hits++;
+                return response.value;
+            }
+        }
+        
+        final long start = System.nanoTime();
+        final String value = responder.apply(request);
+        final long cost = System.nanoTime() - start;
+        
+        final CacheResult response = new CacheResult(
+            value, 
+            System.currentTimeMillis() + expirationAge,
+            sizeOf(request, value)
+        );
         
-        if (response == null || response.hasExpired(System.currentTimeMillis())) {
-            response = new CacheResult(
-                responder.apply(request), 
-                System.currentTimeMillis() + expirationAge
-            );
+        synchronized (this) {
+            totalMisses++;
+            totalCost += cost;
             
-            cache.put(request, response);
+            remove(request);
+            if (response.size <= capacity) {
+                cache.put(request, response);
+                size += response.size;
+                evict();
+            }
         }
         
-        return response.value;
+        return value;
+    }
+    
+    /**
+     * Sets the maximum number of bytes that this cache may use, evicting the
+     * least recently used responses if it is already larger.
+     * 
+     * @param capacity  the new capacity in bytes
+     */
+    synchronized void setCapacity(long capacity) {
+        this.capacity = capacity;
+        evict();
+    }
+    
+    /**
+     * Returns how this cache has been used since the last call to this 
+     * method.
+     * 
+     * @return  the usage
+     */
+    synchronized CacheUsage sampleUsage() {
+        final CacheUsage usage = new CacheUsage(
+            hits, totalMisses == 0 ? 0 : totalCost / totalMisses
+        );
+        
+        hits = 0;
+        
+        return usage;
+    }
+    
+    private void remove(String request) {
+        final CacheResult old = cache.remove(request);
+        if (old != null) {
+            size -= old.size;
+        }
+    }
+    
+    private void evict() {
+        final Iterator<CacheResult> it = cache.values().iterator();
+        
+        while (size > capacity && it.hasNext()) {
+            size -= it.next().size;
+            it.remove();
+        }
+    }
+    
+    private static long sizeOf(String request, String value) {
+        return ENTRY_OVERHEAD + 2L * (request.length() + value.length());
     }
     
     private final static class CacheResult {
         
         private final String value;
         private final long expirationTime;
+        private final long size;
         
-        public CacheResult(String value, long expirationTime) {
+        public CacheResult(String value, long expirationTime, long size) {
             this.value          = value;
             this.expirationTime = expirationTime;
+            this.size           = size;
         }
 
         public boolean hasExpired(long now) {
             return expirationTime < now;
         }
     }
-}
\ No newline at end of file
+}
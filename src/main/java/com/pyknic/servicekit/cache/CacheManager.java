@@ -0,0 +1,263 @@
+package com.pyknic.servicekit.cache;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryNotificationInfo;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import javax.management.NotificationEmitter;
+import javax.management.openmbean.CompositeData;
+
+import static java.util.stream.Collectors.toList;
+import static java.util.stream.Collectors.toSet;
+
+/**
+ * Owns the memory of every {@link BasicCache} in the application. All caches
+ * share a single memory budget that is redistributed regularly based on how
+ * much time each cache saves, that is the number of hits multiplied by the 
+ * average time it takes to calculate a response for that service.
+ * <p>
+ * The manager also listens for heap pressure. If the heap is close to full
+ * after a garbage collection, or if the JVM has started clearing soft 
+ * references, the budget is temporarily cut in half and the caches are 
+ * shrunk immediately. The budget is then slowly restored once the pressure
+ * is gone.
+ * 
+ * @author Emil Forslund
+ */
+public final class CacheManager {
+    
+    /**
+     * The share of the budget that is divided equally among all caches,
+     * regardless of how much time they save.
+     */
+    private final static double EQUAL_SHARE = 0.25;
+    
+    /**
+     * The ratio of a heap pool that may be used after a garbage collection
+     * before the manager starts to shrink the caches.
+     */
+    private final static double PRESSURE_THRESHOLD = 0.75;
+    
+    private final static double MIN_PRESSURE_FACTOR = 1.0 / 64;
+    private final static double RECOVERY_RATE = 1.25;
+    private final static long REBALANCE_PERIOD = 10;
+    
+    private final static CacheManager INSTANCE = new CacheManager();
+    
+    private final List<ManagedCache> caches;
+    private final ScheduledExecutorService scheduler;
+    
+    private volatile long budget;
+    private volatile double pressureFactor;
+    private volatile boolean recentPressure;
+    private SoftReference<Object> sentinel;
+    
+    /**
+     * Returns the manager shared by all caches.
+     * 
+     * @return  the cache manager
+     */
+    public static CacheManager getInstance() {
+        return INSTANCE;
+    }
+    
+    /**
+     * Returns the total number of bytes that all caches may use together 
+     * when the heap is not under pressure.
+     * 
+     * @return  the memory budget in bytes
+     */
+    public long getBudget() {
+        return budget;
+    }
+    
+    /**
+     * Sets the total number of bytes that all caches may use together. By
+     * default this is a tenth of the maximum heap size.
+     * 
+     * @param budget  the new memory budget in bytes
+     */
+    public void setBudget(long budget) {
+        if (budget < 0) {
+            throw new IllegalArgumentException(
+                "Cache budget must be positive, but was " + budget + "."
+            );
+        }
+        
+        this.budget = budget;
+        redistribute();
+    }
+    
+    /**
+     * Returns the ratio (between 0 and 1) of the budget that is currently
+     * available. This is less than 1 if the heap has recently been under 
+     * pressure.
+     * 
+     * @return  the current pressure factor
+     */
+    public double getPressureFactor() {
+        return pressureFactor;
+    }
+    
+    /**
+     * Registers a new cache with the manager. This is called by the server
+     * once the cache of a service has been created. Caches that are never
+     * registered are not limited by the budget.
+     * 
+     * @param cache  the cache to register
+     */
+    public synchronized void register(BasicCache cache) {
+        caches.add(new ManagedCache(cache));
+        redistribute();
+    }
+    
+    /**
+     * Samples the usage of every cache and redistributes the budget among
+     * them based on the time each cache has saved since the last rebalance.
+     */
+    synchronized void rebalance() {
+        caches.removeIf(managed -> managed.cache.get() == null);
+        
+        caches.forEach(managed -> {
+            final BasicCache cache = managed.cache.get();
+            if (cache != null) {
+                managed.timeSaved = cache.sampleUsage().getTimeSaved();
+            }
+        });
+        
+        redistribute();
+    }
+    
+    /**
+     * Redistributes the budget using the usage from the last rebalance. A
+     * quarter of the budget is divided equally and the rest in proportion to
+     * the time each cache saved.
+     */
+    private synchronized void redistribute() {
+        final List<ManagedCache> live = caches.stream()
+            .filter(managed -> managed.cache.get() != null)
+            .collect(toList());
+        
+        if (live.isEmpty()) {
+            return;
+        }
+        
+        final long available = (long) (budget * pressureFactor);
+        final long equal     = (long) (available * EQUAL_SHARE) / live.size();
+        final long shared    = available - equal * live.size();
+        
+        final double totalSaved = live.stream()
+            .mapToDouble(managed -> managed.timeSaved)
+            .sum();
+        
+        for (final ManagedCache managed : live) {
+            final BasicCache cache = managed.cache.get();
+            if (cache != null) {
+                final double ratio = totalSaved > 0
+                    ? managed.timeSaved / totalSaved
+                    : 1.0 / live.size();
+
+                cache.setCapacity(equal + (long) (shared * ratio));
+            }
+        }
+    }
+    
+    /**
+     * Runs periodically on the scheduler thread. Heap pools crossing the 
+     * threshold are reported through notifications, so this only checks if
+     * soft references have been cleared. If there has been no pressure since
+     * the last check, the budget is slowly restored.
+     */
+    private void checkPressure() {
+        final boolean softRefsCleared = sentinel.get() == null;
+        sentinel = new SoftReference<>(new Object());
+        
+        if (softRefsCleared) {
+            applyPressure();
+        } else if (!recentPressure && pressureFactor < 1) {
+            pressureFactor = Math.min(1, pressureFactor * RECOVERY_RATE);
+        }
+        
+        recentPressure = false;
+        rebalance();
+    }
+    
+    private synchronized void applyPressure() {
+        recentPressure = true;
+        pressureFactor = Math.max(MIN_PRESSURE_FACTOR, pressureFactor / 2);
+        redistribute();
+    }
+    
+    private void listenForHeapPressure() {
+        // Only the tenured pool is watched. Eden and survivor spaces are 
+        // routinely full after a young collection, and they are also the 
+        // heap pools that don't support a usage threshold.
+        final List<MemoryPoolMXBean> pools = ManagementFactory.getMemoryPoolMXBeans().stream()
+            .filter(p -> p.getType() == MemoryType.HEAP)
+            .filter(MemoryPoolMXBean::isUsageThresholdSupported)
+            .filter(MemoryPoolMXBean::isCollectionUsageThresholdSupported)
+            .collect(toList());
+        
+        pools.forEach(pool -> {
+            final long max = pool.getUsage().getMax();
+            if (max > 0 && pool.getCollectionUsageThreshold() == 0) {
+                pool.setCollectionUsageThreshold((long) (max * PRESSURE_THRESHOLD));
+            }
+        });
+        
+        final Set<String> tenured = pools.stream()
+            .map(MemoryPoolMXBean::getName)
+            .collect(toSet());
+        
+        final NotificationEmitter emitter = 
+            (NotificationEmitter) ManagementFactory.getMemoryMXBean();
+        
+        emitter.addNotificationListener(
+            (notification, handback) -> scheduler.execute(this::applyPressure),
+            notification -> MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED
+                    .equals(notification.getType())
+                && tenured.contains(MemoryNotificationInfo.from(
+                    (CompositeData) notification.getUserData()).getPoolName()
+                ),
+            null
+        );
+    }
+
+    private CacheManager() {
+        this.caches         = new ArrayList<>();
+        this.budget         = Runtime.getRuntime().maxMemory() / 10;
+        this.pressureFactor = 1;
+        this.sentinel       = new SoftReference<>(new Object());
+        
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            final Thread thread = new Thread(r, "servicekit-cache-manager");
+            thread.setDaemon(true);
+            return thread;
+        });
+        
+        listenForHeapPressure();
+        
+        scheduler.scheduleWithFixedDelay(
+            this::checkPressure, 
+            REBALANCE_PERIOD, REBALANCE_PERIOD, TimeUnit.SECONDS
+        );
+    }
+    
+    private final static class ManagedCache {
+        
+        private final WeakReference<BasicCache> cache;
+        private long timeSaved;
+        
+        private ManagedCache(BasicCache cache) {
+            this.cache = new WeakReference<>(cache);
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package com.pyknic.servicekit.cache;
+
+/**
+ * A snapshot of how a {@link BasicCache} has been used since the last time
+ * it was sampled by the {@link CacheManager}.
+ * 
+ * @author Emil Forslund
+ */
+final class CacheUsage {
+    
+    private final long hits;
+    private final long averageCost;
+    
+    CacheUsage(long hits, long averageCost) {
+        this.hits        = hits;
+        this.averageCost = averageCost;
+    }
+
+    /**
+     * @return  the number of requests answered from the cache
+     */
+    long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return  the average number of nanoseconds spent calculating a response
+     */
+    long getAverageCost() {
+        return averageCost;
+    }
+    
+    /**
+     * Returns the estimated number of nanoseconds that the cache has saved by
+     * answering requests without calculating them.
+     * 
+     * @return  the time saved
+     */
+    long getTimeSaved() {
+        return hits * averageCost;
+    }
+}
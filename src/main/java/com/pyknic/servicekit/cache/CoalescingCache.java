@@ -0,0 +1,65 @@
+package com.pyknic.servicekit.cache;
+
+import com.pyknic.servicekit.ServiceException;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Function;
+
+/**
+ * A {@link Cache} implementation that doesn't store any results but lets
+ * concurrent identical requests share a single call to the service. The first
+ * request calculates the response and every request with the same arguments
+ * that arrives while it is still in flight receives the same response. Once
+ * the call has completed, nothing is kept.
+ * <p>
+ * This is useful for services where the data changes too often to be cached
+ * but that still receive many identical requests at the same time.
+ * 
+ * @author Emil Forslund
+ */
+public final class CoalescingCache implements Cache {
+    
+    private final ConcurrentMap<String, CompletableFuture<String>> inFlight;
+    
+    public CoalescingCache() {
+        inFlight = new ConcurrentHashMap<>();
+    }
+    
+    @Override
+    public String get(String request, Function<String, String> responder) {
+        final CompletableFuture<String> future = new CompletableFuture<>();
+        final CompletableFuture<String> existing = inFlight.putIfAbsent(request, future);
+        
+        if (existing != null) {
+            return await(existing);
+        }
+        
+        try {
+            final String response = responder.apply(request);
+            future.complete(response);
+            return response;
+        } catch (RuntimeException | Error ex) {
+            future.completeExceptionally(ex);
+            throw ex;
+        } finally {
+            inFlight.remove(request, future);
+        }
+    }
+    
+    private static String await(CompletableFuture<String> future) {
+        try {
+            return future.join();
+        } catch (CompletionException ex) {
+            if (ex.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) ex.getCause();
+            } else {
+                throw new ServiceException(
+                    "Coalesced request failed.", ex.getCause()
+                );
+            }
+        }
+    }
+}
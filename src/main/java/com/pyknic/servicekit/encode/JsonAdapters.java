@@ -0,0 +1,230 @@
+/*
+ * Copyright 2015 Emil Forslund.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pyknic.servicekit.encode;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.TypeAdapter;
+import com.google.gson.TypeAdapterFactory;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.util.Arrays;
+
+/**
+ * Holds the shared {@code Gson} instance used by ServiceKit to parse service
+ * parameters and encode service results. {@code Gson} caches every adapter it
+ * creates, so sharing a single instance means the reflective adapter for a
+ * type like {@code Person} is only built once instead of once per request.
+ * <p>
+ * The shared instance also registers specialized adapters for {@code int[]},
+ * {@code long[]} and {@code double[]} that read and write the elements
+ * directly instead of boxing every value like the default array adapter, 
+ * and for plain java objects that read and write their fields through
+ * typed method handles instead of reflection (see 
+ * {@link FieldAdapterFactory}).
+ * <p>
+ * This class is stateless and thread safe.
+ *
+ * @author Emil Forslund
+ */
+public final class JsonAdapters {
+
+    private final static Gson GSON = new GsonBuilder()
+        .registerTypeAdapterFactory(new PrimitiveArrayAdapterFactory())
+        .registerTypeAdapterFactory(new FieldAdapterFactory())
+        .create();
+
+    /**
+     * Returns the shared {@code Gson} instance.
+     *
+     * @return  the gson instance
+     */
+    public static Gson gson() {
+        return GSON;
+    }
+
+    /**
+     * Returns the adapter to use for the specified type. The adapter is
+     * created the first time it is requested and then reused.
+     *
+     * @param type  the type to get an adapter for
+     * @return      the adapter
+     */
+    public static TypeAdapter<?> adapterFor(Type type) {
+        return GSON.getAdapter(TypeToken.get(type));
+    }
+
+    /**
+     * Throws an exception if the specified value is not a valid json number,
+     * the same way the default double adapter in Gson does.
+     *
+     * @param value  the value to check
+     * @return       the same value
+     * @throws IllegalArgumentException  if the value is NaN or infinite
+     */
+    static double checkValidFloatingPoint(double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            throw new IllegalArgumentException(value
+                + " is not a valid double value as per JSON specification. To override this"
+                + " behavior, use GsonBuilder.serializeSpecialFloatingPointValues() method.");
+        }
+        
+        return value;
+    }
+
+    private final static class PrimitiveArrayAdapterFactory implements TypeAdapterFactory {
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public <T> TypeAdapter<T> create(Gson gson, TypeToken<T> type) {
+            final Class<? super T> raw = type.getRawType();
+
+            if (raw == int[].class) {
+                return (TypeAdapter<T>) new IntArrayAdapter();
+            } else if (raw == long[].class) {
+                return (TypeAdapter<T>) new LongArrayAdapter();
+            } else if (raw == double[].class) {
+                return (TypeAdapter<T>) new DoubleArrayAdapter();
+            } else {
+                return null;
+            }
+        }
+    }
+
+    private final static class IntArrayAdapter extends TypeAdapter<int[]> {
+
+        @Override
+        public void write(JsonWriter out, int[] array) throws IOException {
+            if (array == null) {
+                out.nullValue();
+                return;
+            }
+
+            out.beginArray();
+            for (final int value : array) {
+                out.value(value);
+            }
+            out.endArray();
+        }
+
+        @Override
+        public int[] read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+
+            int[] array = new int[16];
+            int size = 0;
+
+            in.beginArray();
+            while (in.hasNext()) {
+                if (size == array.length) {
+                    array = Arrays.copyOf(array, size * 2);
+                }
+                array[size++] = in.nextInt();
+            }
+            in.endArray();
+
+            return Arrays.copyOf(array, size);
+        }
+    }
+
+    private final static class LongArrayAdapter extends TypeAdapter<long[]> {
+
+        @Override
+        public void write(JsonWriter out, long[] array) throws IOException {
+            if (array == null) {
+                out.nullValue();
+                return;
+            }
+
+            out.beginArray();
+            for (final long value : array) {
+                out.value(value);
+            }
+            out.endArray();
+        }
+
+        @Override
+        public long[] read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+
+            long[] array = new long[16];
+            int size = 0;
+
+            in.beginArray();
+            while (in.hasNext()) {
+                if (size == array.length) {
+                    array = Arrays.copyOf(array, size * 2);
+                }
+                array[size++] = in.nextLong();
+            }
+            in.endArray();
+
+            return Arrays.copyOf(array, size);
+        }
+    }
+
+    private final static class DoubleArrayAdapter extends TypeAdapter<double[]> {
+
+        @Override
+        public void write(JsonWriter out, double[] array) throws IOException {
+            if (array == null) {
+                out.nullValue();
+                return;
+            }
+
+            out.beginArray();
+            for (final double value : array) {
+                out.value(checkValidFloatingPoint(value));
+            }
+            out.endArray();
+        }
+
+        @Override
+        public double[] read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+
+            double[] array = new double[16];
+            int size = 0;
+
+            in.beginArray();
+            while (in.hasNext()) {
+                if (size == array.length) {
+                    array = Arrays.copyOf(array, size * 2);
+                }
+                array[size++] = in.nextDouble();
+            }
+            in.endArray();
+
+            return Arrays.copyOf(array, size);
+        }
+    }
+
+    private JsonAdapters() {}
+}
@@ -1,6 +1,5 @@
 package com.pyknic.servicekit.encode;
 
-import com.google.gson.Gson;
 import com.pyknic.servicekit.Service;
 
 import java.util.Map;
@@ -22,8 +21,7 @@ public final class JsonEncoder implements Encoder {
 
     @Override
     public <T> String apply(Map<String, Object> params, T response) {
-        final Gson gson = new Gson();
-        return gson.toJson(response);
+        return JsonAdapters.gson().toJson(response);
     }
 
     @Override
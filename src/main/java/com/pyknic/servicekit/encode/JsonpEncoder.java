@@ -1,6 +1,5 @@
 package com.pyknic.servicekit.encode;
 
-import com.google.gson.Gson;
 import com.pyknic.servicekit.Service;
 import com.pyknic.servicekit.ServiceException;
 
@@ -26,11 +25,10 @@ public final class JsonpEncoder implements Encoder {
 
     @Override
     public <T> String apply(Map<String, Object> params, T response) throws ServiceException {
-        final Gson gson = new Gson();
         try {
             @SuppressWarnings("unchecked") // Throws a ServiceException instead
             final String callback = (String) params.getOrDefault("callback", "callback");
-            return callback + "(" + gson.toJson(response) + ");";
+            return callback + "(" + JsonAdapters.gson().toJson(response) + ");";
         } catch (ClassCastException ex) {
             throw new ServiceException("Param 'callback' must be of type 'String' when parsing JSONP.", ex);
         }
@@ -0,0 +1,50 @@
+/*
+ * Copyright 2015 Emil Forslund.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pyknic.servicekit.trace;
+
+/**
+ * The phases of a request that are timed by a {@link Span}.
+ *
+ * @author Emil Forslund
+ */
+public enum Phase {
+    
+    /**
+     * Parsing the uri and finding the service to call.
+     */
+    ROUTE,
+    
+    /**
+     * Parsing the request parameters into method arguments.
+     */
+    BIND,
+    
+    /**
+     * Looking up the response in the cache of the service, not counting the
+     * time spent calculating a new response.
+     */
+    CACHE,
+    
+    /**
+     * Invoking the service method.
+     */
+    INVOKE,
+    
+    /**
+     * Encoding the result of the service method.
+     */
+    ENCODE
+}
@@ -0,0 +1,256 @@
+/*
+ * Copyright 2015 Emil Forslund.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pyknic.servicekit.trace;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * The trace of a single request. A span holds the nanosecond timings of each
+ * {@link Phase} of the request together with the identifiers used to
+ * correlate it with other systems through the W3C {@code traceparent} header.
+ * <p>
+ * A span is only meant to be modified by the thread that handles the request.
+ *
+ * @author  Emil Forslund
+ * @see     {@url https://www.w3.org/TR/trace-context/}
+ */
+public final class Span {
+    
+    private final static String VERSION = "00";
+    private final static int FLAG_SAMPLED = 0x01;
+    private final static Phase[] PHASES = Phase.values();
+    
+    private final long traceIdHigh, traceIdLow;
+    private final long parentId, spanId;
+    private final boolean propagated, sampled;
+    private final long startTime;
+    private final long[] timings;
+    
+    private String service;
+    private int status;
+    private long duration;
+    private Throwable error;
+    
+    /**
+     * Starts a new span for a request. If the request has a valid 
+     * {@code traceparent} header, the span will be part of that trace.
+     * Otherwise a new trace is started.
+     * 
+     * @param traceparent  the value of the {@code traceparent} header or null
+     * @return             the new span
+     */
+    public static Span start(String traceparent) {
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        
+        if (isValidTraceparent(traceparent)) {
+            return new Span(
+                Long.parseUnsignedLong(traceparent.substring(3, 19), 16),
+                Long.parseUnsignedLong(traceparent.substring(19, 35), 16),
+                Long.parseUnsignedLong(traceparent.substring(36, 52), 16),
+                random.nextLong(), true,
+                (Integer.parseInt(traceparent.substring(53, 55), 16) & FLAG_SAMPLED) != 0
+            );
+        } else {
+            return new Span(
+                random.nextLong(), random.nextLong(), 0, 
+                random.nextLong(), false, false
+            );
+        }
+    }
+    
+    /**
+     * Adds the specified number of nanoseconds to the time spent in the 
+     * specified phase.
+     * 
+     * @param phase  the phase
+     * @param nanos  the time spent
+     */
+    public void record(Phase phase, long nanos) {
+        timings[phase.ordinal()] += nanos;
+    }
+    
+    /**
+     * Returns the total number of nanoseconds spent in the specified phase.
+     * 
+     * @param phase  the phase
+     * @return       the time spent
+     */
+    public long get(Phase phase) {
+        return timings[phase.ordinal()];
+    }
+
+    public String getService() {
+        return service;
+    }
+
+    public void setService(String service) {
+        this.service = service;
+    }
+
+    public Throwable getError() {
+        return error;
+    }
+
+    public void setError(Throwable error) {
+        this.error = error;
+    }
+
+    public int getStatus() {
+        return status;
+    }
+    
+    /**
+     * Returns the total number of nanoseconds of the request. This is only
+     * available once the span has been finished.
+     * 
+     * @return  the duration of the request
+     */
+    public long getDuration() {
+        return duration;
+    }
+    
+    /**
+     * Returns true if the caller asked for this request to be sampled by
+     * setting the sampled-flag in the {@code traceparent} header.
+     * 
+     * @return  true if sampled by the caller
+     */
+    public boolean isSampled() {
+        return sampled;
+    }
+    
+    /**
+     * Returns true if this span is part of a trace that was started by the 
+     * caller through the {@code traceparent} header.
+     * 
+     * @return  true if the trace was propagated
+     */
+    public boolean isPropagated() {
+        return propagated;
+    }
+    
+    /**
+     * Finishes this span, recording the total duration of the request.
+     * 
+     * @param status  the http status code of the response
+     */
+    public void finish(int status) {
+        this.status   = status;
+        this.duration = System.nanoTime() - startTime;
+    }
+    
+    /**
+     * Returns the {@code traceparent} header that identifies this span for
+     * downstream systems.
+     * 
+     * @return  the header value
+     */
+    public String toTraceparent() {
+        return VERSION + "-" + 
+            hex(traceIdHigh) + hex(traceIdLow) + "-" + 
+            hex(spanId) + "-" + 
+            (sampled ? "01" : "00");
+    }
+    
+    /**
+     * Returns the {@code traceresponse} header that tells the caller which
+     * span handled its request. It has the same format as the
+     * {@code traceparent} header.
+     * 
+     * @return  the header value
+     */
+    public String toTraceresponse() {
+        return toTraceparent();
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder str = new StringBuilder()
+            .append("trace=").append(hex(traceIdHigh)).append(hex(traceIdLow))
+            .append(" span=").append(hex(spanId));
+        
+        if (propagated) {
+            str.append(" parent=").append(hex(parentId));
+        }
+        
+        str.append(" service=").append(service)
+            .append(" status=").append(status)
+            .append(" total=").append(duration).append("ns");
+        
+        for (final Phase phase : PHASES) {
+            str.append(' ').append(phase.name().toLowerCase())
+                .append('=').append(get(phase)).append("ns");
+        }
+        
+        if (error != null) {
+            final StringWriter trace = new StringWriter();
+            error.printStackTrace(new PrintWriter(trace));
+            str.append(System.lineSeparator()).append(trace);
+        }
+        
+        return str.toString();
+    }
+    
+    private static boolean isValidTraceparent(String header) {
+        if (header == null || header.length() < 55
+        ||  header.charAt(2)  != '-' 
+        ||  header.charAt(35) != '-' 
+        ||  header.charAt(52) != '-'
+        ||  header.startsWith("ff")) {
+            return false;
+        }
+        
+        // Version 00 has exactly four fields. Later versions may append more
+        // fields that are ignored.
+        if (header.startsWith(VERSION) 
+            ? header.length() != 55 
+            : header.length() > 55 && header.charAt(55) != '-') {
+            return false;
+        }
+        
+        for (int i = 0; i < 55; i++) {
+            if (i != 2 && i != 35 && i != 52 && !isLowerHex(header.charAt(i))) {
+                return false;
+            }
+        }
+        
+        // All-zero trace and parent ids are invalid according to the spec.
+        return !header.regionMatches(3, "00000000000000000000000000000000", 0, 32)
+            && !header.regionMatches(36, "0000000000000000", 0, 16);
+    }
+    
+    private static boolean isLowerHex(char c) {
+        return (c >= '0' && c <= '9') || (c >= 'a' && c <= 'f');
+    }
+    
+    private static String hex(long value) {
+        final String str = Long.toHexString(value);
+        return "0000000000000000".substring(str.length()) + str;
+    }
+
+    private Span(long traceIdHigh, long traceIdLow, long parentId, long spanId, boolean propagated, boolean sampled) {
+        this.traceIdHigh = traceIdHigh;
+        this.traceIdLow  = traceIdLow;
+        this.parentId    = parentId;
+        this.spanId      = spanId;
+        this.propagated  = propagated;
+        this.sampled     = sampled;
+        this.startTime   = System.nanoTime();
+        this.timings     = new long[PHASES.length];
+    }
+}
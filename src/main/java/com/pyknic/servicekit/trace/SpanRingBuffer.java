@@ -0,0 +1,105 @@
+/*
+ * Copyright 2015 Emil Forslund.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pyknic.servicekit.trace;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A bounded, lock-free ring buffer of spans that can be written to by many
+ * threads and read by a single thread. Each slot has a sequence number that
+ * tells if it is ready to be written or read, so neither side ever has to
+ * wait for the other. If the buffer is full, new spans are rejected rather
+ * than blocking the writer.
+ *
+ * @author Emil Forslund
+ */
+final class SpanRingBuffer {
+    
+    private final int mask;
+    private final Span[] slots;
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail;
+    private long head;
+    
+    /**
+     * Creates a new buffer. The capacity is rounded up to the nearest power
+     * of two.
+     * 
+     * @param capacity  the minimum capacity
+     */
+    SpanRingBuffer(int capacity) {
+        final int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        
+        this.mask      = size - 1;
+        this.slots     = new Span[size];
+        this.sequences = new AtomicLongArray(size);
+        this.tail      = new AtomicLong();
+        
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+    }
+    
+    /**
+     * Adds the specified span to the buffer. This method may be called by
+     * any thread.
+     * 
+     * @param span  the span to add
+     * @return      true if added, false if the buffer was full
+     */
+    boolean offer(Span span) {
+        long pos = tail.get();
+        
+        while (true) {
+            final int index = (int) (pos & mask);
+            final long diff = sequences.get(index) - pos;
+            
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    slots[index] = span;
+                    sequences.set(index, pos + 1);
+                    return true;
+                }
+            } else if (diff < 0) {
+                return false;
+            }
+            
+            pos = tail.get();
+        }
+    }
+    
+    /**
+     * Removes the oldest span from the buffer. This method may only be 
+     * called by the reading thread.
+     * 
+     * @return  the oldest span or null if the buffer is empty
+     */
+    Span poll() {
+        final int index = (int) (head & mask);
+        
+        if (sequences.get(index) != head + 1) {
+            return null;
+        }
+        
+        final Span span = slots[index];
+        slots[index] = null;
+        sequences.set(index, head + mask + 1);
+        head++;
+        
+        return span;
+    }
+}
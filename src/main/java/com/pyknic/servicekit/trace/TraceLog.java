@@ -0,0 +1,249 @@
+/*
+ * Copyright 2015 Emil Forslund.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pyknic.servicekit.trace;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * An asynchronous log of slow, failed and sampled requests. Finished spans 
+ * are handed to a lock-free ring buffer and written to the output by a 
+ * separate background thread, so logging never blocks the thread that 
+ * handles the request. If the buffer is full the span is dropped.
+ * <p>
+ * A span is logged if the request took longer than the slow threshold, if
+ * it failed with an exception, if the caller set the sampled-flag in the
+ * {@code traceparent} header or if it was picked by the random sample rate.
+ * Slow and failed requests have a buffer of their own, so that callers that
+ * sample every request can not crowd them out.
+ *
+ * @author Emil Forslund
+ */
+public class TraceLog {
+    
+    public final static long DEFAULT_SLOW_THRESHOLD = TimeUnit.SECONDS.toNanos(1);
+    public final static int DEFAULT_CAPACITY = 1024;
+    
+    private final static long IDLE_NANOS = TimeUnit.SECONDS.toNanos(1);
+    
+    private final long slowThreshold;
+    private final double sampleRate;
+    private final Consumer<String> output;
+    private final SpanRingBuffer important;
+    private final SpanRingBuffer sampled;
+    private final AtomicLong dropped;
+    private final AtomicLong failed;
+    
+    private volatile boolean running;
+    private volatile Thread writer;
+    
+    /**
+     * Creates a log that writes requests slower than one second and failed
+     * requests to {@code System.err}.
+     */
+    public TraceLog() {
+        this(DEFAULT_SLOW_THRESHOLD, 0, DEFAULT_CAPACITY, System.err::println);
+    }
+    
+    /**
+     * Creates a new log.
+     * 
+     * @param slowThreshold  the number of nanoseconds after which a request
+     *                       is considered slow
+     * @param sampleRate     the ratio (between 0 and 1) of requests to log
+     *                       even if they are not slow
+     * @param capacity       the number of spans that can wait to be written,
+     *                       reserved separately for slow or failed requests
+     *                       and for sampled requests
+     * @param output         the consumer to write the log lines to
+     */
+    public TraceLog(long slowThreshold, double sampleRate, int capacity, Consumer<String> output) {
+        this.slowThreshold = slowThreshold;
+        this.sampleRate    = sampleRate;
+        this.output        = requireNonNull(output);
+        this.important     = new SpanRingBuffer(capacity);
+        this.sampled       = new SpanRingBuffer(capacity);
+        this.dropped       = new AtomicLong();
+        this.failed        = new AtomicLong();
+    }
+    
+    /**
+     * Submits a finished span to the log. If the span should be logged it is
+     * queued to be written by the background thread. This method never 
+     * blocks.
+     * 
+     * @param span  the finished span
+     */
+    public void submit(Span span) {
+        final SpanRingBuffer buffer;
+        
+        if (isSlowOrFailed(span)) {
+            buffer = important;
+        } else if (isSampled(span)) {
+            buffer = sampled;
+        } else {
+            return;
+        }
+        
+        if (buffer.offer(span)) {
+            final Thread current = writer;
+            if (current != null) {
+                LockSupport.unpark(current);
+            }
+        } else {
+            dropped.incrementAndGet();
+        }
+    }
+    
+    /**
+     * Returns the number of spans that were dropped because the buffer was
+     * full.
+     * 
+     * @return  the number of dropped spans
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+    
+    /**
+     * Returns the number of spans that could not be written because the
+     * formatting or the output failed.
+     * 
+     * @return  the number of failed spans
+     */
+    public long getFailed() {
+        return failed.get();
+    }
+    
+    /**
+     * Starts the background thread that writes the log.
+     * 
+     * @return  a reference to this
+     */
+    public synchronized TraceLog start() {
+        if (!running) {
+            running = true;
+            writer  = new Thread(this::write, "servicekit-trace");
+            writer.setDaemon(true);
+            writer.start();
+        }
+        
+        return this;
+    }
+    
+    /**
+     * Stops the background thread once every queued span has been written.
+     * 
+     * @return  a reference to this
+     */
+    public synchronized TraceLog stop() {
+        if (running) {
+            running = false;
+            LockSupport.unpark(writer);
+            
+            try {
+                writer.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            
+            writer = null;
+        }
+        
+        return this;
+    }
+    
+    /**
+     * Returns true if the specified span was slow or failed and therefore
+     * should always be written to the log. Subclasses can override this to 
+     * change which requests are logged.
+     * 
+     * @param span  the finished span
+     * @return      true if it was slow or failed
+     */
+    protected boolean isSlowOrFailed(Span span) {
+        return span.getDuration() >= slowThreshold
+            || span.getError() != null;
+    }
+    
+    /**
+     * Returns true if the specified span was sampled, either by the caller or
+     * by the random sample rate. Sampled spans are only written if there is
+     * room for them. Subclasses can override this to change which requests 
+     * are logged.
+     * 
+     * @param span  the finished span
+     * @return      true if it was sampled
+     */
+    protected boolean isSampled(Span span) {
+        return span.isSampled()
+            || (sampleRate > 0 && ThreadLocalRandom.current().nextDouble() < sampleRate);
+    }
+    
+    /**
+     * Formats the specified span as a log line. Subclasses can override this
+     * to use a different format.
+     * 
+     * @param span  the span to format
+     * @return      the log line
+     */
+    protected String format(Span span) {
+        return span.toString();
+    }
+    
+    /**
+     * Called on the writer thread when the specified span could not be 
+     * formatted or written. The failure has already been counted (see 
+     * {@link #getFailed()}). Subclasses can override this to report the
+     * failure somewhere else. The default implementation does nothing.
+     * 
+     * @param span  the span that could not be written
+     * @param thrw  the cause of the failure
+     */
+    protected void onWriteFailed(Span span, Throwable thrw) {}
+    
+    private void write() {
+        while (true) {
+            Span span = important.poll();
+            if (span == null) {
+                span = sampled.poll();
+            }
+            
+            if (span != null) {
+                try {
+                    output.accept(format(span));
+                } catch (RuntimeException | Error ex) {
+                    failed.incrementAndGet();
+                    
+                    try {
+                        onWriteFailed(span, ex);
+                    } catch (RuntimeException | Error ignored) {
+                        // The writer must stay alive or every span is dropped.
+                    }
+                }
+            } else if (running) {
+                LockSupport.parkNanos(this, IDLE_NANOS);
+            } else {
+                return;
+            }
+        }
+    }
+}
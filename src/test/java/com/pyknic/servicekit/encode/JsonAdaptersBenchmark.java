@@ -0,0 +1,248 @@
+/*
+ * Copyright 2015 Emil Forslund.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pyknic.servicekit.encode;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Supplier;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * Compares the specialized adapters in {@link JsonAdapters} with the default
+ * adapters in Gson. The field adapters of {@link FieldAdapterFactory} are
+ * measured against the reflective adapter of Gson on nested objects, and
+ * the primitive array adapters against the default array adapter.
+ * <p>
+ * Every case runs in a JVM of its own, several times, with a warm-up
+ * period before the measurement starts. The median of all forks is 
+ * reported. Run the main method of this class with the test classpath, 
+ * for an example:
+ * <pre>
+ * mvn test-compile exec:java -Dexec.mainClass=com.pyknic.servicekit.encode.JsonAdaptersBenchmark -Dexec.classpathScope=test
+ * </pre>
+ *
+ * @author Emil Forslund
+ */
+public final class JsonAdaptersBenchmark {
+    
+    private final static int FORKS = 3;
+    private final static int ROUNDS = 5;
+    private final static int BATCH = 100;
+    private final static long WARMUP_NANOS = SECONDS.toNanos(3);
+    private final static long ROUND_NANOS = MILLISECONDS.toNanos(500);
+    
+    private static volatile Object sink;
+    
+    private enum Case {
+        OBJECT_WRITE_REFLECTIVE ("Nested objects, write, reflective adapter", () -> write(new Gson(), Order.random())),
+        OBJECT_WRITE_FIELDS     ("Nested objects, write, field adapter     ", () -> write(fieldGson(), Order.random())),
+        OBJECT_READ_REFLECTIVE  ("Nested objects, read,  reflective adapter", () -> read(new Gson(), Order.random(), Order.class)),
+        OBJECT_READ_FIELDS      ("Nested objects, read,  field adapter     ", () -> read(fieldGson(), Order.random(), Order.class)),
+        ARRAY_WRITE_DEFAULT     ("Primitive arrays, write, default adapter ", () -> writeArrays(new Gson())),
+        ARRAY_WRITE_SPECIALIZED ("Primitive arrays, write, JsonAdapters    ", () -> writeArrays(JsonAdapters.gson())),
+        ARRAY_READ_DEFAULT      ("Primitive arrays, read,  default adapter ", () -> readArrays(new Gson())),
+        ARRAY_READ_SPECIALIZED  ("Primitive arrays, read,  JsonAdapters    ", () -> readArrays(JsonAdapters.gson()));
+        
+        private final String label;
+        private final Supplier<Runnable> operation;
+        
+        Case(String label, Supplier<Runnable> operation) {
+            this.label     = label;
+            this.operation = operation;
+        }
+    }
+    
+    public static void main(String... args) throws IOException, InterruptedException {
+        if (args.length == 1) {
+            System.out.println(measure(Case.valueOf(args[0]).operation.get()));
+            return;
+        }
+        
+        for (final Case benchmark : Case.values()) {
+            final double[] forks = new double[FORKS];
+            for (int i = 0; i < FORKS; i++) {
+                forks[i] = fork(benchmark);
+            }
+            
+            System.out.println(String.format("%s  %10.0f ns/op  (forks: %s)",
+                benchmark.label, median(forks), Arrays.toString(forks)
+            ));
+        }
+    }
+    
+    private static double fork(Case benchmark) throws IOException, InterruptedException {
+        final Process process = new ProcessBuilder(
+                Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+                "-cp", System.getProperty("java.class.path"),
+                JsonAdaptersBenchmark.class.getName(),
+                benchmark.name()
+            )
+            .redirectError(ProcessBuilder.Redirect.INHERIT)
+            .start();
+        
+        final String result;
+        try (final BufferedReader reader = new BufferedReader(
+                new InputStreamReader(process.getInputStream()))) {
+            result = reader.readLine();
+        }
+        
+        if (process.waitFor() != 0 || result == null) {
+            throw new IllegalStateException("Fork of " + benchmark + " failed.");
+        }
+        
+        return Math.rint(Double.parseDouble(result));
+    }
+    
+    /**
+     * Runs the operation until it is warmed up and then returns the median
+     * number of nanoseconds per operation over a number of rounds.
+     */
+    private static double measure(Runnable operation) {
+        run(operation, WARMUP_NANOS);
+        
+        final double[] rounds = new double[ROUNDS];
+        for (int i = 0; i < ROUNDS; i++) {
+            rounds[i] = run(operation, ROUND_NANOS);
+        }
+        
+        return median(rounds);
+    }
+    
+    private static double run(Runnable operation, long duration) {
+        final long start = System.nanoTime();
+        long operations = 0, elapsed;
+        
+        do {
+            for (int i = 0; i < BATCH; i++) {
+                operation.run();
+            }
+            operations += BATCH;
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < duration);
+        
+        return (double) elapsed / operations;
+    }
+    
+    private static double median(double[] values) {
+        final double[] sorted = values.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+    
+    private static Gson fieldGson() {
+        return new GsonBuilder()
+            .registerTypeAdapterFactory(new FieldAdapterFactory())
+            .create();
+    }
+    
+    private static Runnable write(Gson gson, Object value) {
+        return () -> sink = gson.toJson(value);
+    }
+    
+    private static Runnable read(Gson gson, Object value, Class<?> type) {
+        final String json = gson.toJson(value);
+        return () -> sink = gson.fromJson(json, type);
+    }
+    
+    private static Runnable writeArrays(Gson gson) {
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        final int[] ints       = random.ints(1_000).toArray();
+        final long[] longs     = random.longs(1_000).toArray();
+        final double[] doubles = random.doubles(1_000).toArray();
+        
+        return () -> {
+            sink = gson.toJson(ints);
+            sink = gson.toJson(longs);
+            sink = gson.toJson(doubles);
+        };
+    }
+    
+    private static Runnable readArrays(Gson gson) {
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        final String ints    = gson.toJson(random.ints(1_000).toArray());
+        final String longs   = gson.toJson(random.longs(1_000).toArray());
+        final String doubles = gson.toJson(random.doubles(1_000).toArray());
+        
+        return () -> {
+            sink = gson.fromJson(ints, int[].class);
+            sink = gson.fromJson(longs, long[].class);
+            sink = gson.fromJson(doubles, double[].class);
+        };
+    }
+    
+    private final static class Person {
+        private String firstname, lastname;
+        private int age;
+        private double height;
+        private boolean active;
+    }
+    
+    private final static class Car {
+        private String name;
+        private int cost;
+        private long mileage;
+        private Person owner;
+    }
+    
+    private final static class Order {
+        private long id;
+        private Person customer;
+        private Car[] cars;
+        private double total;
+        
+        private static Order random() {
+            final ThreadLocalRandom random = ThreadLocalRandom.current();
+            final Order order = new Order();
+            
+            order.id       = random.nextLong();
+            order.customer = person(random);
+            order.total    = random.nextDouble() * 1_000_000;
+            order.cars     = new Car[8];
+            
+            for (int i = 0; i < order.cars.length; i++) {
+                final Car car = new Car();
+                car.name      = "Car " + i;
+                car.cost      = random.nextInt(100_000);
+                car.mileage   = random.nextLong(1_000_000);
+                car.owner     = person(random);
+                order.cars[i] = car;
+            }
+            
+            return order;
+        }
+        
+        private static Person person(ThreadLocalRandom random) {
+            final Person person = new Person();
+            person.firstname = "John";
+            person.lastname  = "Smith";
+            person.age       = random.nextInt(100);
+            person.height    = 1.5 + random.nextDouble();
+            person.active    = random.nextBoolean();
+            return person;
+        }
+    }
+    
+    private JsonAdaptersBenchmark() {}
+}